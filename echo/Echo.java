@@ -2,8 +2,19 @@ package domain.proof.hashing.echo;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import domain.proof.hashing.echo.Logic;
 
 /**
@@ -18,13 +29,36 @@ public class Echo {
 
 	public static void main(String[] args) throws IOException {
 
+		// Take out the options, they can be anywhere on the command line
+		Path cacheFile = null;
+		boolean verify = false;
+		boolean optionWithoutValue = false;
+		List<String> positional = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--cache")) {
+				if (i + 1 < args.length) {
+					cacheFile = Paths.get(args[++i]);
+				} else {
+					optionWithoutValue = true;
+				}
+			} else if (args[i].equals("--verify")) {
+				verify = true;
+			} else {
+				positional.add(args[i]);
+			}
+		}
+		args = positional.toArray(new String[0]);
+
 		// If the user isn't using the program correctly, or they want help
-		if (args.length < 1 || args[0].equals("help")) {
-			System.err.println("Usage: Echo input.txt <debug level>");
+		if (args.length < 1 || args[0].equals("help") || optionWithoutValue) {
+			System.err.println("Usage: Echo input.txt <debug level> [--cache index.file] [--verify]");
 			System.err.println("       Debug level description:");
 			System.err.println("         0: No debugging - only the final hash is printed");
 			System.err.println("         1: Minimal debugging - only the block hashes are printed");
 			System.err.println("         2: Maximum debugging - W values and abcdefg for each round are printed");
+			System.err.println("       --cache: remember hashes in the index file, an unchanged file is not read again");
+			System.err.println("                only the hash is printed, files of any size are read a part at a time");
+			System.err.println("       --verify: hash the file even if the cache has it, and check the cached hash");
 			System.exit(-1);
 		}
 
@@ -40,20 +74,121 @@ public class Echo {
 			System.exit(-2);
 		}
 
-		// Read the entire input file as UTF-8
-		String input = new String(Files.readAllBytes(inputFile.toPath()), StandardCharsets.UTF_8);
+		// A file with the same inode, size and modification time is answered from the
+		// cache without reading it. The attributes are read before the file is, so a
+		// change while hashing is noticed
+		EchoDigestCache cache = null;
+		EchoDigestCache.Entry before = null;
+		String cached = null;
+		if (cacheFile != null) {
+			cache = new EchoDigestCache(cacheFile);
+			before = EchoDigestCache.describe(inputFile.toPath());
+			cached = cache.get(before);
+			if (cached != null && !verify) {
+				System.out.println(cached);
+				return;
+			}
+		}
+
+		String hashed;
+		if (cache != null) {
+			// With the cache only the hash is printed, the same as for a hit. The file is
+			// hashed a part at a time, so files of any size can be cached; the first
+			// pass only counts the bytes, because ECHO needs the length up front
+			long length = writeNormalizedText(inputFile.toPath(), OutputStream.nullOutputStream());
+			EchoOutputStream echo = new EchoOutputStream(length);
+			writeNormalizedText(inputFile.toPath(), echo);
+			hashed = echo.digest();
+		} else {
+			// The whole file is read into one array, which Java limits to about 2 GB
+			if (inputFile.length() > Integer.MAX_VALUE - 8) {
+				System.err.println("Input file '" + args[0] + "' is too big to hash without --cache!");
+				System.exit(-2);
+			}
 
-		// A strange bug occurs on Windows since it adds a carriage return as well as a
-		// newline
-		// Thus we have to get rid of all carriage returns in the read input
-		input = input.replaceAll("\r\n", "\n");
+			// Read the entire input file as UTF-8
+			String input = new String(Files.readAllBytes(inputFile.toPath()), StandardCharsets.UTF_8);
 
-		// Do the hash
-		System.out.println(input);
-		String hashed = Echo.hash(input.getBytes());
+			// A strange bug occurs on Windows since it adds a carriage return as well as a
+			// newline
+			// Thus we have to get rid of all carriage returns in the read input
+			input = input.replaceAll("\r\n", "\n");
+
+			// Do the hash
+			System.out.println(input);
+			hashed = Echo.hash(input.getBytes());
+		}
 
 		// Print it out
 		System.out.println(hashed);
+
+		if (cache != null) {
+			if (!cache.put(before, hashed)) {
+				System.err.println("Input file '" + args[0] + "' changed while it was hashed, the hash is not cached");
+			}
+			if (cached != null && !cached.equals(hashed)) {
+				System.err.println("Cached hash of '" + args[0] + "' was " + cached + ", the cache is updated");
+				System.exit(-3);
+			}
+		}
+	}
+
+	/**
+	 * Writes the file the way main() hashes it: read as UTF-8, "\r\n" replaced by
+	 * "\n" and written in the default charset. This gives the same bytes as
+	 * new String(bytes, UTF_8).replaceAll("\r\n", "\n").getBytes(), but only a
+	 * part of the file is in memory at a time.
+	 * 
+	 * @return number of bytes written to sink
+	 */
+	private static long writeNormalizedText(Path file, OutputStream sink) throws IOException {
+		long[] count = new long[1];
+		OutputStream counting = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				sink.write(b);
+				count[0]++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				sink.write(b, off, len);
+				count[0] += len;
+			}
+		};
+
+		try (Reader in = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)) {
+			Writer out = new OutputStreamWriter(counting, Charset.defaultCharset());
+			char[] read = new char[64 * 1024];
+			// one more, for a '\r' that is held back from the previous part
+			char[] kept = new char[read.length + 1];
+			boolean carriageReturn = false;
+			int length;
+			while ((length = in.read(read)) >= 0) {
+				int n = 0;
+				for (int i = 0; i < length; i++) {
+					char c = read[i];
+					// a '\r' is only dropped when the next char is '\n'
+					if (carriageReturn) {
+						carriageReturn = false;
+						if (c != '\n') {
+							kept[n++] = '\r';
+						}
+					}
+					if (c == '\r') {
+						carriageReturn = true;
+					} else {
+						kept[n++] = c;
+					}
+				}
+				out.write(kept, 0, n);
+			}
+			if (carriageReturn) {
+				out.write('\r');
+			}
+			out.flush();
+		}
+		return count[0];
 	}
 
 	// Does the actual hash
@@ -95,4 +230,40 @@ public class Echo {
 		return output;
 	}
 
+	/**
+	 * Hashes the remaining bytes of the buffer (from position to limit). The buffer
+	 * can be a heap or a direct buffer; full blocks are read straight from it in
+	 * the compression loop and only the last part of the message is copied for
+	 * padding. The position of the buffer is not changed. Off-heap memory, like a
+	 * MemorySegment, can be hashed through its ByteBuffer view. A ByteBuffer holds
+	 * at most 2 GB, so bigger inputs can not be hashed with this method.
+	 * 
+	 * @param input ByteBuffer
+	 * @return the same string as hash(byte[]) for the same bytes
+	 */
+	public static String hash(ByteBuffer input) {
+		int start = input.position();
+		int length = input.remaining();
+		int fullBlocksLength = length - length % 128;
+
+		// Pad the tail first, because it initializes Ci used by every compress1024
+		byte[] tail = new byte[length - fullBlocksLength];
+		input.get(start + fullBlocksLength, tail);
+		byte[][][][] tailBlocks = Logic.toBlocks(Logic.pad(tail, length));
+
+		byte[][][] V = new byte[8][4][4];
+		for (int i = 0; i < Constants.V.length; i++) {
+			V[i] = Logic.copyTwoDimentionalArray(Constants.V[i]);
+		}
+
+		for (int offset = start; offset < start + fullBlocksLength; offset += 128) {
+			V = Logic.compress1024(V, Logic.toBlock(input, offset));
+		}
+		for (byte[][][] block : tailBlocks) {
+			V = Logic.compress1024(V, block);
+		}
+
+		return Logic.forOutputStringFromV(V);
+	}
+
 }
@@ -0,0 +1,300 @@
+package domain.proof.hashing.echo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers ECHO hashes of files in a local index file, so a file that did not
+ * change is answered without reading it again. A file counts as unchanged when
+ * its path, inode (file key), size and modification time are the same as when
+ * it was hashed.
+ *
+ * The index is append-only: every new hash and every hit adds a small record at
+ * the end, and the last record for a path wins. When the file holds too many
+ * records it is rewritten with only the most recently used entries (LRU).
+ *
+ * Several processes can share one index: loading, appending and compacting are
+ * done while holding a lock on the file "<index>.lock" next to it.
+ *
+ * @author Klimenko
+ *
+ */
+public class EchoDigestCache {
+
+	// "ECDC" and the version of the record format
+	private static final int MAGIC = 0x45434443;
+	private static final int VERSION = 1;
+
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	// one lock per JVM as well, a FileLock can not be taken twice by one process
+	private static final Object LOCK = new Object();
+
+	private final Path indexFile;
+	private final Path lockFile;
+	private final int maxEntries;
+
+	// path -> entry, iteration order is from least to most recently used
+	private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private int records;
+
+	/**
+	 * A file as it was on disk when describe() was called, with its hash when it
+	 * is stored in the cache.
+	 */
+	public static final class Entry {
+		private final String path;
+		private final String fileKey;
+		private final long size;
+		private final long modified;
+		private final String digest;
+
+		private Entry(String path, String fileKey, long size, long modified, String digest) {
+			this.path = path;
+			this.fileKey = fileKey;
+			this.size = size;
+			this.modified = modified;
+			this.digest = digest;
+		}
+
+		private boolean sameFile(Entry other) {
+			return fileKey.equals(other.fileKey) && size == other.size && modified == other.modified;
+		}
+
+		private Entry withDigest(String digest) {
+			return new Entry(path, fileKey, size, modified, digest);
+		}
+	}
+
+	public EchoDigestCache(Path indexFile) throws IOException {
+		this(indexFile, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Loads the index file if it exists.
+	 *
+	 * @param indexFile  file with the records
+	 * @param maxEntries number of files kept after compaction
+	 */
+	public EchoDigestCache(Path indexFile, int maxEntries) throws IOException {
+		this.indexFile = indexFile.toAbsolutePath();
+		this.lockFile = this.indexFile.resolveSibling(this.indexFile.getFileName() + ".lock");
+		this.maxEntries = maxEntries;
+		locked(() -> {
+			if (Files.exists(this.indexFile) && (read() || records > 2 * maxEntries)) {
+				write();
+			}
+		});
+	}
+
+	private interface IndexAction {
+		void run() throws IOException;
+	}
+
+	/**
+	 * Runs the action while holding the lock of the index, so another process
+	 * never sees a half written record or loses an append to a compaction.
+	 */
+	private void locked(IndexAction action) throws IOException {
+		synchronized (LOCK) {
+			try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+					FileLock lock = channel.lock()) {
+				action.run();
+			}
+		}
+	}
+
+	/**
+	 * @param current the file as returned by describe()
+	 * @return the cached hash of the file, or null when the file is not in the
+	 *         cache or changed since it was hashed
+	 */
+	public String get(Entry current) throws IOException {
+		Entry cached = entries.get(current.path);
+		if (cached == null || !cached.sameFile(current)) {
+			return null;
+		}
+		// write the hit down as well, so the LRU order survives a restart
+		locked(() -> append(cached));
+		return cached.digest;
+	}
+
+	/**
+	 * Stores the hash of the file, but only when the file still is as it was
+	 * before it was read. Otherwise the hash could belong to other contents than
+	 * the size and modification time it is stored with.
+	 *
+	 * @param before the file as returned by describe() before it was read
+	 * @param digest hash of the contents that were read
+	 * @return false when the file changed and nothing was stored
+	 */
+	public boolean put(Entry before, String digest) throws IOException {
+		if (!before.sameFile(describe(Paths.get(before.path)))) {
+			return false;
+		}
+		Entry entry = before.withDigest(digest);
+		locked(() -> {
+			entries.put(entry.path, entry);
+			append(entry);
+		});
+		return true;
+	}
+
+	/**
+	 * Reads the attributes that tell whether the file changed.
+	 */
+	public static Entry describe(Path file) throws IOException {
+		Path real = file.toRealPath();
+		BasicFileAttributes attributes = Files.readAttributes(real, BasicFileAttributes.class);
+		String fileKey;
+		try {
+			// the inode on unix file systems
+			fileKey = String.valueOf(Files.getAttribute(real, "unix:ino"));
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			Object key = attributes.fileKey();
+			fileKey = key == null ? "" : key.toString();
+		}
+		return new Entry(real.toString(), fileKey, attributes.size(),
+				attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), null);
+	}
+
+	/**
+	 * Reads the whole index into entries. Must hold the lock.
+	 *
+	 * @return true when the last record was cut off
+	 */
+	private boolean read() throws IOException {
+		entries.clear();
+		records = 0;
+		boolean damaged = false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not an ECHO digest cache: " + indexFile);
+			}
+			while (true) {
+				Entry entry;
+				try {
+					entry = readEntry(in);
+				} catch (EOFException e) {
+					// the last record is cut off when the program stopped while writing it
+					damaged = true;
+					break;
+				}
+				if (entry == null) {
+					break;
+				}
+				entries.put(entry.path, entry);
+				records++;
+			}
+		} catch (EOFException e) {
+			// not even a complete header
+			damaged = true;
+		}
+		return damaged;
+	}
+
+	/**
+	 * @return the next entry or null at the end of the file
+	 */
+	private static Entry readEntry(DataInputStream in) throws IOException {
+		int first = in.read();
+		if (first < 0) {
+			return null;
+		}
+		if (first != 1) {
+			throw new EOFException("Unknown record type " + first);
+		}
+		String path = in.readUTF();
+		String fileKey = in.readUTF();
+		long size = in.readLong();
+		long modified = in.readLong();
+		String digest = in.readUTF();
+		return new Entry(path, fileKey, size, modified, digest);
+	}
+
+	private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+		out.writeByte(1);
+		out.writeUTF(entry.path);
+		out.writeUTF(entry.fileKey);
+		out.writeLong(entry.size);
+		out.writeLong(entry.modified);
+		out.writeUTF(entry.digest);
+	}
+
+	/**
+	 * Adds one record at the end of the index with a single write, and compacts
+	 * the index when it grew too big. Must hold the lock.
+	 */
+	private void append(Entry entry) throws IOException {
+		if (!Files.exists(indexFile)) {
+			write();
+			return;
+		}
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		writeEntry(new DataOutputStream(record), entry);
+		try (OutputStream out = Files.newOutputStream(indexFile, StandardOpenOption.APPEND)) {
+			record.writeTo(out);
+		}
+		records++;
+		if (records > 2 * maxEntries) {
+			// other processes may have appended since this one read the index
+			read();
+			write();
+		}
+	}
+
+	/**
+	 * Rewrites the index with one record for each of the maxEntries most recently
+	 * used files. A temporary file of its own is written to disk and moved over
+	 * the index, so a crash keeps the old index. Must hold the lock.
+	 */
+	private void write() throws IOException {
+		List<Entry> kept = new ArrayList<>(entries.values());
+		kept = kept.subList(Math.max(0, kept.size() - maxEntries), kept.size());
+
+		Path temp = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				for (Entry entry : kept) {
+					writeEntry(out, entry);
+				}
+				out.flush();
+				// the contents must be on disk before the rename is
+				channel.force(true);
+			}
+			Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			// only still there when writing or moving failed
+			Files.deleteIfExists(temp);
+		}
+
+		entries.clear();
+		for (Entry entry : kept) {
+			entries.put(entry.path, entry);
+		}
+		records = kept.size();
+	}
+}
@@ -0,0 +1,287 @@
+package domain.proof.hashing.echo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Checks that every registered ECHO engine gives exactly the same hash as the
+ * reference Echo.hash(byte[]). A faster engine is registered with register()
+ * and is then run on the same inputs as all the others.
+ *
+ * Before that the reference itself is checked against known hashes of the first
+ * version of Echo.hash(byte[]).
+ *
+ * The fixed inputs are the edge cases of Logic.pad(): with 18 bytes of padding
+ * a message of 110 bytes still fits in one block and 111 bytes needs two. After
+ * them random inputs are checked, either a fixed number of them or, in soak
+ * mode, as many as fit in the given number of seconds.
+ *
+ * @author Klimenko
+ *
+ */
+public class EchoEquivalence {
+
+	private static final Map<String, Function<byte[], String>> ENGINES = new LinkedHashMap<>();
+
+	// the edge cases around the padding and block size and one multi-MB message
+	private static final int[] EDGE_LENGTHS = { 0, 1, 2, 15, 16, 17, 109, 110, 111, 112, 127, 128, 129, 237, 238,
+			239, 255, 256, 257, 1024, 2 * 1024 * 1024 };
+
+	// hashes from the first version of Echo.hash(byte[]), so a change of the
+	// reference itself is found too: { input, length, hash }
+	private static final String[][] KNOWN_ANSWERS = {
+		{ "pattern", "0",
+				"FB000000FA0000000000000000000000E4000000FA0000000000000000000000F9000000FA0000000000000000000000E4000000FA0000000000000000000000" },
+		{ "pattern", "1",
+				"D1000000FA000000000000000000000003000000FA00000000000000000000002E000000FA0000000000000000000000B1000000FA0000000000000000000000" },
+		{ "pattern", "110",
+				"DB4549D44EB1F214EB48449A23DC629464F52F01070D24F1FA73866550BA6B7008FBAE1E30463DB8B911CACC4759536AE14D99A59F063BB9BE89526F3C95D0AE" },
+		{ "pattern", "111",
+				"34F1C1014900CED36D121E222AE02961959CBEF47736FDD0FEF7F2506DB4BF0B175162C826B75F070244C965484DFEA1C15033CC7C45D08553F38EF10A8EF102" },
+		{ "pattern", "112",
+				"B0F1C1014900CED36D121E222AE02961BB9CBEF47736FDD0FEF7F2506DB4BF0B375162C826B75F070244C965484DFEA1385033CC7C45D08553F38EF10A8EF102" },
+		{ "pattern", "127",
+				"5DF1C1014900CED36D121E222AE02961FD9CBEF47736FDD0FEF7F2506DB4BF0B4B5162C826B75F070244C965484DFEA1BC5033CC7C45D08553F38EF10A8EF102" },
+		{ "pattern", "128",
+				"32F1C10149BACEA16D121E222A2C2961B59CBEF47793FDBEFEF7F2506D85BF0B155162C826445FBB0244C96548FFFEA1395033CC7C1AD06A53F38EF10AB1F102" },
+		{ "pattern", "129",
+				"B3F1C10149BACEA16D121E222A2C2961179CBEF47793FDBEFEF7F2506D85BF0B755162C826445FBB0244C96548FFFEA1DE5033CC7C1AD06A53F38EF10AB1F102" },
+		{ "pattern", "2097152",
+				"878E495002E1797ED45C49656DFBB3BEE885E449D49224B3B9F58B13B91A66EE498555851DE9B14A14500A26445D05251747AF32BDE1C955AE63CA70B932D48F" },
+		{ "zeros", "0",
+				"FB000000FA0000000000000000000000E4000000FA0000000000000000000000F9000000FA0000000000000000000000E4000000FA0000000000000000000000" },
+		{ "zeros", "1",
+				"FA000000FA000000000000000000000003000000FA00000000000000000000002E000000FA0000000000000000000000B1000000FA0000000000000000000000" },
+		{ "zeros", "110",
+				"2C000000FA000000000000000000000000000000FA0000000000000000000000DF000000FA0000000000000000000000B0000000FA0000000000000000000000" },
+		{ "zeros", "111",
+				"1FBE00000000000000000000000000003BBE000000000000000000000000000054BE0000000000000000000000000000AABE0000000000000000000000000000" },
+		{ "zeros", "128",
+				"1EBE0000000000000000000000000000ADBE0000000000000000000000000000E6BE0000000000000000000000000000AFBE0000000000000000000000000000" },
+	};
+
+	private static Random random;
+
+	// inputs of other lengths that are hashed at the same time as the checked one
+	private static final int BATCH_SIZE = 16;
+
+	// started by the first input, shut down at the end of main
+	private static EchoHashService service;
+
+	static {
+		register("heap ByteBuffer", input -> Echo.hash(ByteBuffer.wrap(input)));
+		register("direct ByteBuffer", input -> Echo.hash(toDirect(input)));
+		register("read-only ByteBuffer", input -> Echo.hash(ByteBuffer.wrap(input).asReadOnlyBuffer()));
+		register("unaligned slice of a direct buffer", EchoEquivalence::hashUnalignedSlice);
+		register("EchoHashService", EchoEquivalence::hashWithService);
+		register("EchoHashService batch", EchoEquivalence::hashBatchWithService);
+		register("EchoOutputStream in random chunks", EchoEquivalence::hashInChunks);
+	}
+
+	/**
+	 * Adds an engine to the check. It has to return the same string as
+	 * Echo.hash(input) and must not change the input.
+	 */
+	public static void register(String name, Function<byte[], String> engine) {
+		ENGINES.put(name, engine);
+	}
+
+	public static void main(String[] args) {
+
+		if (args.length > 0 && args[0].equals("help")) {
+			System.err.println("Usage: EchoEquivalence <random inputs> <seed>");
+			System.err.println("       EchoEquivalence soak <seconds> <seed>");
+			System.err.println("       random inputs: number of random inputs after the edge cases (default 100)");
+			System.err.println("       soak: keep checking random inputs until the seconds are over");
+			System.exit(-1);
+		}
+
+		boolean soak = args.length > 0 && args[0].equals("soak");
+		int argsStart = soak ? 1 : 0;
+		long amount = args.length > argsStart ? Long.parseLong(args[argsStart]) : 100;
+		long seed = args.length > argsStart + 1 ? Long.parseLong(args[argsStart + 1]) : System.nanoTime();
+		// print the seed, so a failing run can be repeated
+		System.out.println("Seed: " + seed);
+		random = new Random(seed);
+
+		checkKnownAnswers();
+
+		int checked = 0;
+		for (int length : EDGE_LENGTHS) {
+			check(randomBytes(length));
+			check(new byte[length]);
+			checked += 2;
+		}
+
+		long end = System.nanoTime() + amount * 1_000_000_000L;
+		for (long i = 0; soak ? System.nanoTime() < end : i < amount; i++) {
+			// mostly short messages, sometimes up to 64 KB
+			int length = random.nextInt(10) == 0 ? random.nextInt(64 * 1024) : random.nextInt(600);
+			check(randomBytes(length));
+			checked++;
+		}
+
+		if (service != null) {
+			service.shutdown();
+		}
+		System.out.println("All " + ENGINES.size() + " engines gave the reference hash for " + checked + " inputs");
+	}
+
+	/**
+	 * Compares the hash of every engine with the reference and stops the program
+	 * at the first difference.
+	 */
+	private static void check(byte[] input) {
+		byte[] original = input.clone();
+		String expected = Echo.hash(input);
+		for (Map.Entry<String, Function<byte[], String>> engine : ENGINES.entrySet()) {
+			String actual = engine.getValue().apply(input);
+			if (!expected.equals(actual)) {
+				System.err.println("Engine '" + engine.getKey() + "' differs for an input of " + input.length + " bytes");
+				System.err.println("  expected: " + expected);
+				System.err.println("  actual:   " + actual);
+				System.exit(-2);
+			}
+			if (!Arrays.equals(original, input)) {
+				System.err.println("Engine '" + engine.getKey() + "' changed its input");
+				System.exit(-2);
+			}
+		}
+	}
+
+	/**
+	 * Stops the program when the reference does not give the known hash anymore.
+	 * The pattern input has byte i = i * 31 + 7.
+	 */
+	private static void checkKnownAnswers() {
+		for (String[] answer : KNOWN_ANSWERS) {
+			byte[] input = new byte[Integer.parseInt(answer[1])];
+			if (answer[0].equals("pattern")) {
+				for (int i = 0; i < input.length; i++) {
+					input[i] = (byte) (i * 31 + 7);
+				}
+			}
+			String actual = Echo.hash(input);
+			if (!actual.equals(answer[2])) {
+				System.err.println("Reference differs from the known hash for " + answer[1] + " bytes of " + answer[0]);
+				System.err.println("  expected: " + answer[2]);
+				System.err.println("  actual:   " + actual);
+				System.exit(-3);
+			}
+		}
+	}
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	private static ByteBuffer toDirect(byte[] input) {
+		ByteBuffer direct = ByteBuffer.allocateDirect(input.length);
+		direct.put(input);
+		direct.flip();
+		return direct;
+	}
+
+	/**
+	 * Puts the input at a random offset of a bigger direct buffer and hashes only
+	 * that part, so the position and limit of the buffer do not start at 0 and
+	 * the blocks are not aligned with the start of the buffer.
+	 */
+	private static String hashUnalignedSlice(byte[] input) {
+		int before = random.nextInt(200);
+		int after = random.nextInt(200);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(before + input.length + after);
+		buffer.position(before);
+		buffer.put(input);
+		buffer.limit(before + input.length);
+		buffer.position(before);
+		String hashed = Echo.hash(buffer);
+		if (buffer.position() != before) {
+			return "position changed to " + buffer.position();
+		}
+		return hashed;
+	}
+
+	/**
+	 * Writes the input to an EchoOutputStream in chunks of random size, with
+	 * empty writes in between.
+	 */
+	private static String hashInChunks(byte[] input) {
+		try {
+			EchoOutputStream echo = new EchoOutputStream(input.length);
+			int written = 0;
+			while (written < input.length) {
+				int chunk = Math.min(input.length - written, random.nextInt(300));
+				echo.write(input, written, chunk);
+				written += chunk;
+			}
+			return echo.digest();
+		} catch (IOException e) {
+			return e.toString();
+		}
+	}
+
+	private static EchoHashService service() {
+		if (service == null) {
+			service = new EchoHashService(Runtime.getRuntime().availableProcessors(), BATCH_SIZE);
+		}
+		return service;
+	}
+
+	private static String hashWithService(byte[] input) {
+		try {
+			return service().submit(input).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return e.toString();
+		} catch (ExecutionException e) {
+			return e.toString();
+		}
+	}
+
+	/**
+	 * Submits the input together with other inputs of random lengths before
+	 * waiting for any of them, so the worker threads hash different messages at
+	 * the same time. Every result of the batch is compared with the reference.
+	 */
+	private static String hashBatchWithService(byte[] input) {
+		List<byte[]> batch = new ArrayList<>();
+		batch.add(input);
+		for (int i = 1; i < BATCH_SIZE; i++) {
+			batch.add(randomBytes(random.nextInt(2000)));
+		}
+
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (byte[] message : batch) {
+			results.add(service().submit(message));
+		}
+
+		try {
+			for (int i = 1; i < BATCH_SIZE; i++) {
+				String expected = Echo.hash(batch.get(i));
+				String actual = results.get(i).get();
+				if (!expected.equals(actual)) {
+					return "other input of " + batch.get(i).length + " bytes in the batch gave " + actual
+							+ " instead of " + expected;
+				}
+			}
+			return results.get(0).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return e.toString();
+		} catch (ExecutionException e) {
+			return e.toString();
+		}
+	}
+}
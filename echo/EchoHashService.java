@@ -0,0 +1,287 @@
+package domain.proof.hashing.echo;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import domain.Asset;
+import domain.proof.difficulty.DifficultyAssessorFactory;
+
+/**
+ * Runs Echo.hash() and EchoProof validation on a pool of worker threads, so the
+ * calling thread is not blocked by large inputs. The queue of waiting tasks is
+ * bounded; what happens when it is full is decided by the
+ * RejectedExecutionHandler (by default the caller runs the task itself, which
+ * slows the producer down). Identical requests that are still running share one
+ * result.
+ *
+ * @author Klimenko
+ *
+ */
+public class EchoHashService {
+
+	private final ThreadPoolExecutor executor;
+
+	// requests that are queued or running, to give the same future to duplicates
+	private final Map<ByteBuffer, CompletableFuture<String>> hashesInFlight = new ConcurrentHashMap<>();
+	private final Map<List<Object>, CompletableFuture<EchoProof>> proofsInFlight = new ConcurrentHashMap<>();
+
+	// metrics, latency is measured from submit until the result is ready
+	private final LongAdder submitted = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder totalLatencyNanos = new LongAdder();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	/**
+	 * Creates a service where a full queue makes the submitting thread do the work.
+	 *
+	 * @param threads       number of worker threads
+	 * @param queueCapacity maximum number of waiting tasks
+	 */
+	public EchoHashService(int threads, int queueCapacity) {
+		this(threads, queueCapacity, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * @param threads       number of worker threads
+	 * @param queueCapacity maximum number of waiting tasks
+	 * @param whenFull      what to do with a task when the queue is full, for
+	 *                      example ThreadPoolExecutor.AbortPolicy to fail the
+	 *                      returned future. A task that the policy drops (like
+	 *                      DiscardPolicy or DiscardOldestPolicy do) fails its
+	 *                      future with RejectedExecutionException.
+	 */
+	public EchoHashService(int threads, int queueCapacity, RejectedExecutionHandler whenFull) {
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new DroppingQueue(queueCapacity), (task, pool) -> {
+					// some policies drop the task silently after shutdown, then the future would never complete
+					if (pool.isShutdown()) {
+						throw new RejectedExecutionException("EchoHashService is shut down");
+					}
+					whenFull.rejectedExecution(task, pool);
+					// the policy returned without running or queueing the task, so it was dropped
+					if (task instanceof Job && !((Job<?, ?>) task).queued) {
+						((Job<?, ?>) task).reject("Dropped because the queue of EchoHashService is full");
+					}
+				});
+	}
+
+	/**
+	 * Queue of the executor. It marks every task it accepts as queued, also when a
+	 * blocking policy puts it in, so the task is not taken for dropped when a
+	 * worker takes it right away. Workers take tasks with take(), so a task
+	 * removed with poll() is never run; that is how DiscardOldestPolicy evicts the
+	 * oldest task, and its future is failed here.
+	 */
+	private static final class DroppingQueue extends ArrayBlockingQueue<Runnable> {
+
+		private static final long serialVersionUID = 1L;
+
+		DroppingQueue(int capacity) {
+			super(capacity);
+		}
+
+		@Override
+		public boolean offer(Runnable task) {
+			return queued(task, super.offer(task));
+		}
+
+		@Override
+		public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+			return queued(task, super.offer(task, timeout, unit));
+		}
+
+		@Override
+		public void put(Runnable task) throws InterruptedException {
+			super.put(task);
+			queued(task, true);
+		}
+
+		private static boolean queued(Runnable task, boolean accepted) {
+			if (accepted && task instanceof Job) {
+				((Job<?, ?>) task).queued = true;
+			}
+			return accepted;
+		}
+
+		@Override
+		public Runnable poll() {
+			Runnable task = super.poll();
+			if (task instanceof Job) {
+				((Job<?, ?>) task).reject("Evicted from the queue of EchoHashService");
+			}
+			return task;
+		}
+	}
+
+	/**
+	 * One request. It either runs or is rejected, never both, so a dropped task
+	 * still completes its future and leaves the in-flight map.
+	 */
+	private final class Job<K, V> implements Runnable {
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		// set by the queue, read by the rejection handler on the same thread
+		private volatile boolean queued;
+		private final Map<K, CompletableFuture<V>> inFlight;
+		private final K key;
+		private final CompletableFuture<V> result;
+		private final Callable<V> task;
+		private final long start = System.nanoTime();
+
+		Job(Map<K, CompletableFuture<V>> inFlight, K key, CompletableFuture<V> result, Callable<V> task) {
+			this.inFlight = inFlight;
+			this.key = key;
+			this.result = result;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			if (!claimed.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				V value = task.call();
+				inFlight.remove(key, result);
+				result.complete(value);
+			} catch (Throwable t) {
+				inFlight.remove(key, result);
+				result.completeExceptionally(t);
+			}
+			recordLatency(System.nanoTime() - start);
+		}
+
+		void reject(String reason) {
+			if (claimed.compareAndSet(false, true)) {
+				inFlight.remove(key, result);
+				result.completeExceptionally(new RejectedExecutionException(reason));
+			}
+		}
+	}
+
+	/**
+	 * Hashes the input on a worker thread. The input is copied, so the caller can
+	 * reuse the array right away.
+	 *
+	 * @param input byte[]
+	 * @return future with the same string as Echo.hash(input)
+	 */
+	public CompletableFuture<String> submit(byte[] input) {
+		byte[] copy = Arrays.copyOf(input, input.length);
+		return coalesce(hashesInFlight, ByteBuffer.wrap(copy), () -> Echo.hash(copy));
+	}
+
+	/**
+	 * Creates (and so validates) an EchoProof on a worker thread. The difficulty is
+	 * the one at the moment of submitting, so the time the request waits in the
+	 * queue does not change the result. Requests are only merged when their
+	 * difficulty is the same. The future fails with IllegalProofException when the
+	 * proof is not valid.
+	 *
+	 * @return future with the created proof
+	 */
+	public CompletableFuture<EchoProof> submitProof(BigInteger original, long nonce, BigInteger hash, Asset asset) {
+		Date moment = new Date();
+		int difficulty;
+		try {
+			difficulty = DifficultyAssessorFactory.getAssessor(EchoProof.class).getDifficulty(moment);
+		} catch (Exception e) {
+			submitted.increment();
+			return CompletableFuture.failedFuture(e);
+		}
+		List<Object> key = Arrays.asList(original, nonce, hash, asset, difficulty);
+		return coalesce(proofsInFlight, key, () -> new EchoProof(original, nonce, hash, asset, moment));
+	}
+
+	/**
+	 * Starts the task unless the same key is already in flight. Every caller gets
+	 * its own copy of the shared future, so cancelling one does not affect others.
+	 */
+	private <K, V> CompletableFuture<V> coalesce(Map<K, CompletableFuture<V>> inFlight, K key, Callable<V> task) {
+		submitted.increment();
+		CompletableFuture<V> result = new CompletableFuture<>();
+		CompletableFuture<V> existing = inFlight.putIfAbsent(key, result);
+		if (existing != null) {
+			coalesced.increment();
+			return existing.copy();
+		}
+
+		Job<K, V> job = new Job<>(inFlight, key, result, task);
+		try {
+			executor.execute(job);
+		} catch (RejectedExecutionException e) {
+			job.reject(e.getMessage());
+		}
+		return result.copy();
+	}
+
+	private void recordLatency(long nanos) {
+		completed.increment();
+		totalLatencyNanos.add(nanos);
+		maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * @return number of tasks waiting in the queue
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return number of distinct requests that are queued or running
+	 */
+	public int getInFlight() {
+		return hashesInFlight.size() + proofsInFlight.size();
+	}
+
+	public long getSubmitted() {
+		return submitted.sum();
+	}
+
+	/**
+	 * @return number of requests that got the result of a request already in flight
+	 */
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	public long getAverageLatencyNanos() {
+		long count = completed.sum();
+		return count == 0 ? 0 : totalLatencyNanos.sum() / count;
+	}
+
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos.get();
+	}
+
+	/**
+	 * Stops accepting new requests; the ones already queued are still finished.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+}
@@ -0,0 +1,219 @@
+package domain.proof.hashing.echo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Merkle root over a growing list of leaves (hashes of proofs) that uses ECHO
+ * for the inner nodes. Only the frontier is kept: for every bit set in the
+ * number of leaves, the root of one complete subtree. Appending a leaf merges
+ * equal-sized subtrees like a binary counter, so it costs O(log n) hashes
+ * instead of rehashing all leaves.
+ *
+ * The root is published as an immutable snapshot, so getRoot() can be called
+ * from many validating threads without locking while another thread appends.
+ *
+ * A node is ECHO(left || right) where both children are written as 64
+ * unsigned big-endian bytes. When the number of leaves is not a power of two
+ * the subtrees of the frontier are combined from the smallest to the largest,
+ * the larger (older) subtree always on the left.
+ *
+ * @author Klimenko
+ *
+ */
+public class EchoMerkleAccumulator {
+
+	// "ECMA" and the version of the persisted frontier
+	private static final int MAGIC = 0x45434D41;
+	private static final int VERSION = 1;
+
+	// 512 bits of the ECHO output
+	private static final int NODE_BYTES = 64;
+
+	/**
+	 * State that is never changed after it is published.
+	 */
+	private static final class Snapshot {
+		final long count;
+		// frontier[i] is the root of a complete subtree of 2^i leaves or null
+		final BigInteger[] frontier;
+		final BigInteger root;
+
+		Snapshot(long count, BigInteger[] frontier, BigInteger root) {
+			this.count = count;
+			this.frontier = frontier;
+			this.root = root;
+		}
+	}
+
+	private volatile Snapshot current = new Snapshot(0, new BigInteger[0], null);
+
+	/**
+	 * Adds a leaf and updates the root with O(log n) hashes.
+	 *
+	 * @param leaf non-negative value of at most 512 bits, e.g. the hash of a proof
+	 */
+	public synchronized void append(BigInteger leaf) {
+		Snapshot old = current;
+		long count = old.count + 1;
+		BigInteger[] frontier = new BigInteger[64 - Long.numberOfLeadingZeros(count)];
+		System.arraycopy(old.frontier, 0, frontier, 0, old.frontier.length);
+
+		// carry the new leaf up while there is a subtree of the same size
+		BigInteger node = checkNode(leaf);
+		int level = 0;
+		while (frontier[level] != null) {
+			node = combine(frontier[level], node);
+			frontier[level] = null;
+			level++;
+		}
+		frontier[level] = node;
+
+		current = new Snapshot(count, frontier, rootOf(frontier));
+	}
+
+	/**
+	 * @return the current root, or null if no leaf was appended yet
+	 */
+	public BigInteger getRoot() {
+		return current.root;
+	}
+
+	/**
+	 * Reads the root and the number of leaves from one snapshot, so a leaf that is
+	 * appended in between can not mix them up.
+	 * 
+	 * @param count the number of leaves the caller expects
+	 * @return the root, or null when the number of leaves is not count or is 0
+	 */
+	public BigInteger getRoot(long count) {
+		Snapshot snapshot = current;
+		return snapshot.count == count ? snapshot.root : null;
+	}
+
+	/**
+	 * @return number of appended leaves
+	 */
+	public long getCount() {
+		return current.count;
+	}
+
+	private static BigInteger rootOf(BigInteger[] frontier) {
+		BigInteger root = null;
+		for (BigInteger node : frontier) {
+			if (node != null) {
+				root = root == null ? node : combine(node, root);
+			}
+		}
+		return root;
+	}
+
+	private static BigInteger combine(BigInteger left, BigInteger right) {
+		byte[] toHash = new byte[2 * NODE_BYTES];
+		writeNode(left, toHash, 0);
+		writeNode(right, toHash, NODE_BYTES);
+		return new BigInteger(Echo.hash(toHash), 16);
+	}
+
+	private static BigInteger checkNode(BigInteger node) {
+		if (node.signum() < 0 || node.bitLength() > NODE_BYTES * 8) {
+			throw new IllegalArgumentException("Merkle node must be a non-negative number of at most 512 bits");
+		}
+		return node;
+	}
+
+	/**
+	 * Writes the node as NODE_BYTES unsigned big-endian bytes at index offset
+	 */
+	private static void writeNode(BigInteger node, byte[] out, int offset) {
+		byte[] bytes = node.toByteArray();
+		// toByteArray can have an extra leading zero byte for the sign
+		int length = Math.min(bytes.length, NODE_BYTES);
+		System.arraycopy(bytes, bytes.length - length, out, offset + NODE_BYTES - length, length);
+	}
+
+	/**
+	 * Writes the number of leaves and the frontier nodes. This is enough to go on
+	 * appending after a restart without reading the leaves again.
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		Snapshot snapshot = current;
+		DataOutputStream out = new DataOutputStream(output);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(snapshot.count);
+		byte[] node = new byte[NODE_BYTES];
+		// only the levels of the bits set in count are written
+		for (BigInteger n : snapshot.frontier) {
+			if (n != null) {
+				Arrays.fill(node, (byte) 0);
+				writeNode(n, node, 0);
+				out.write(node);
+			}
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads a frontier written by writeTo().
+	 */
+	public static EchoMerkleAccumulator readFrom(InputStream input) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not an ECHO Merkle frontier");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported ECHO Merkle frontier version " + version);
+		}
+		long count = in.readLong();
+		if (count < 0) {
+			throw new IOException("Negative number of leaves " + count);
+		}
+
+		BigInteger[] frontier = new BigInteger[64 - Long.numberOfLeadingZeros(count)];
+		byte[] node = new byte[NODE_BYTES];
+		for (int level = 0; level < frontier.length; level++) {
+			if ((count & (1L << level)) != 0) {
+				in.readFully(node);
+				frontier[level] = new BigInteger(1, node);
+			}
+		}
+
+		EchoMerkleAccumulator accumulator = new EchoMerkleAccumulator();
+		accumulator.current = new Snapshot(count, frontier, rootOf(frontier));
+		return accumulator;
+	}
+
+	/**
+	 * Saves the frontier to the file; a temporary file is written to disk and
+	 * then moved over it, so a crash never leaves half a frontier behind.
+	 */
+	public void save(Path file) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeTo(Channels.newOutputStream(channel));
+			// the contents must be on disk before the rename is
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public static EchoMerkleAccumulator load(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)) {
+			return readFrom(in);
+		}
+	}
+}
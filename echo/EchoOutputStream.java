@@ -0,0 +1,97 @@
+package domain.proof.hashing.echo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Hashes a message that is written in parts of any size, so the message never
+ * has to be in memory at once and can be longer than 2 GB. ECHO takes the first
+ * key (Logic.Ci) from the length of the whole message, so the length has to be
+ * known before the first byte is written. digest() gives the same string as
+ * Echo.hash() for the same bytes.
+ *
+ * @author Klimenko
+ *
+ */
+public class EchoOutputStream extends OutputStream {
+
+	private final long length;
+	private long written;
+
+	// the block that is being filled
+	private final byte[] block = new byte[128];
+	private int inBlock;
+
+	// the padded last blocks; only the length decides how they look, so they are
+	// made up front and the last bytes of the message are copied in at the end
+	private final byte[] padded;
+	// Ci of this message, compress1024 changes it for every block
+	private final byte[] key;
+	private byte[][][] V = new byte[8][4][4];
+	private String digest;
+
+	/**
+	 * @param length number of bytes that will be written
+	 */
+	public EchoOutputStream(long length) {
+		this.length = length;
+		padded = Logic.pad(new byte[(int) (length % 128)], length);
+		key = Logic.Ci.get();
+		for (int i = 0; i < Constants.V.length; i++) {
+			V[i] = Logic.copyTwoDimentionalArray(Constants.V[i]);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (digest != null) {
+			throw new IOException("The hash is already finished");
+		}
+		if (len > length - written) {
+			throw new IOException("More than the " + length + " bytes given at the start are written");
+		}
+		written += len;
+		while (len > 0) {
+			int part = Math.min(len, block.length - inBlock);
+			System.arraycopy(b, off, block, inBlock, part);
+			inBlock += part;
+			off += part;
+			len -= part;
+			if (inBlock == block.length) {
+				compress(Logic.toBlock(ByteBuffer.wrap(block), 0));
+				inBlock = 0;
+			}
+		}
+	}
+
+	/**
+	 * Finishes the hash with the padded last blocks.
+	 *
+	 * @return the same string as Echo.hash() of all written bytes
+	 */
+	public String digest() throws IOException {
+		if (digest == null) {
+			if (written != length) {
+				throw new IOException("Only " + written + " of the " + length + " bytes are written");
+			}
+			System.arraycopy(block, 0, padded, 0, inBlock);
+			for (byte[][][] last : Logic.toBlocks(padded)) {
+				compress(last);
+			}
+			digest = Logic.forOutputStringFromV(V);
+		}
+		return digest;
+	}
+
+	private void compress(byte[][][] message) {
+		// another hash on this thread may have set its own Ci in the meantime
+		Logic.Ci.set(key);
+		V = Logic.compress1024(V, message);
+	}
+}
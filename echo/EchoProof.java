@@ -23,6 +23,13 @@ public class EchoProof extends Proof {
 	private BigInteger hash;
 	private int difficulty;
 
+	// when set and in step with the chain, validation reads its root instead of
+	// recomputing chain.getMerkleRoot() every time
+	private static volatile EchoMerkleAccumulator merkleRoots;
+	// the accumulator whose root was found equal to chain.getMerkleRoot() with at
+	// least one leaf
+	private static volatile EchoMerkleAccumulator checkedMerkleRoots;
+
 	public EchoProof(BigInteger original, long nonce, BigInteger hash, Asset asset, Date moment) throws NoSuchAlgorithmException, IOException {
 		super();
 		this.original = original;
@@ -38,6 +45,46 @@ public class EchoProof extends Proof {
 		this(original, nonce, hash, asset, new Date());
 	}
 
+	/**
+	 * Sets the accumulator that isValid() takes the Merkle root from. Its leaves
+	 * are the hashes of the EchoProofs of the chain in chain order, the same list
+	 * isValid() counts, so it is only meant for a chain whose Merkle root covers
+	 * exactly its EchoProofs. Whether the chain builds the same tree is checked
+	 * against chain.getMerkleRoot(): here when the chain already has proofs,
+	 * otherwise in isValid() the first time both have the same, non-zero number of
+	 * leaves. An accumulator that gives another root is dropped there. isValid()
+	 * only uses it while its number of leaves equals the number of proofs in the
+	 * chain, otherwise it asks the chain. Null goes back to always asking the
+	 * chain.
+	 * 
+	 * @throws IllegalArgumentException when the accumulator does not match the chain
+	 */
+	public static synchronized void setMerkleAccumulator(EchoMerkleAccumulator accumulator) throws NoSuchAlgorithmException, IOException {
+		if (accumulator != null) {
+			Chain chain = Chain.instance(Asset.getDefault());
+			int proofs = chain.getProofs(EchoProof.class, false).size();
+			// an empty accumulator for an empty chain is compared in isValid() later
+			if (proofs != 0 || accumulator.getCount() != 0) {
+				BigInteger root = accumulator.getRoot(proofs);
+				if (root == null || !root.equals(chain.getMerkleRoot())) {
+					throw new IllegalArgumentException("Merkle accumulator is not in step with the chain");
+				}
+				checkedMerkleRoots = accumulator;
+			}
+		}
+		merkleRoots = accumulator;
+	}
+
+	/**
+	 * Stops using the accumulator when its root turned out to differ from the one
+	 * of the chain, unless another one was set in the meantime.
+	 */
+	private static synchronized void dropMerkleAccumulator(EchoMerkleAccumulator accumulator) {
+		if (merkleRoots == accumulator) {
+			merkleRoots = null;
+		}
+	}
+
 	@Override
 	public boolean equals(Proof o) {
 		if (o instanceof EchoProof) {
@@ -51,12 +98,46 @@ public class EchoProof extends Proof {
 
 	@Override
 	public boolean isValid() throws NoSuchAlgorithmException, IOException {
-		BigInteger toHash = original;
 		Chain chain = Chain.instance(Asset.getDefault());
 		List<Proof> existingProofs = chain.getProofs(EchoProof.class,  false);
-		if (!existingProofs.contains(this)) {
-			toHash = chain.getMerkleRoot();
+		if (existingProofs.contains(this)) {
+			return isValidFrom(original);
 		}
+
+		// the accumulator lags behind when the newest proofs are not appended yet
+		EchoMerkleAccumulator roots = merkleRoots;
+		BigInteger root = roots == null ? null : roots.getRoot(existingProofs.size());
+		if (root != null && checkedMerkleRoots != roots) {
+			// the first time it has leaves, it is compared with the tree of the chain
+			if (root.equals(chain.getMerkleRoot())) {
+				checkedMerkleRoots = roots;
+			} else {
+				dropMerkleAccumulator(roots);
+				root = null;
+			}
+		}
+		if (root == null) {
+			return isValidFrom(chain.getMerkleRoot());
+		}
+		if (isValidFrom(root)) {
+			return true;
+		}
+		// a valid proof must never be refused because of the accumulator, so a
+		// proof that does not match its root is checked against the chain as well
+		BigInteger chainRoot = chain.getMerkleRoot();
+		if (chainRoot.equals(root)) {
+			return false;
+		}
+		dropMerkleAccumulator(roots);
+		return isValidFrom(chainRoot);
+	}
+
+	/**
+	 * Hashes start with the nonce as many times as the difficulty asks and checks
+	 * the result against the hash of this proof.
+	 */
+	private boolean isValidFrom(BigInteger start) {
+		BigInteger toHash = start;
 		int rounds = MathUtil.binlog(difficulty);
 		for (int i=0; i<rounds; i++) {
 			toHash = hash(toHash, nonce);
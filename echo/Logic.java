@@ -1,6 +1,7 @@
 package domain.proof.hashing.echo;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -14,7 +15,8 @@ import java.util.Arrays;
  */
 public class Logic {
 
-	static byte[] Ci = new byte[16];
+	// Ci is changed while a message is hashed, so every thread keeps its own copy
+	static final ThreadLocal<byte[]> Ci = ThreadLocal.withInitial(() -> new byte[16]);
 
 	/**
 	 * A padding rule will be applied to the message M input to ECHO and this
@@ -22,6 +24,20 @@ public class Logic {
 	 * 128. The part of this method was taken from SHA512 class of this program.
 	 */
 	public static byte[] pad(byte[] input) {
+		return pad(input, input.length);
+	}
+
+	/**
+	 * Pads only the last part of a message whose full 128-byte blocks are read
+	 * elsewhere (for example straight from a ByteBuffer). The length that is
+	 * written into the padding is messageLength, the length of the whole message,
+	 * so the returned blocks are the same as the last blocks of pad(message).
+	 * 
+	 * @param input       the bytes after the last full block of the message
+	 * @param messageLength length of the whole message in bytes
+	 * @return byte[]
+	 */
+	public static byte[] pad(byte[] input, long messageLength) {
 		/*
 		 * the length of the array will be created here. We need: 1) message length
 		 * (bits) 2) 1 bit 3) n zeros 4) 16 bits for Hsize 5) 128 for bit representation
@@ -55,7 +71,7 @@ public class Logic {
 		// works
 		// so why change it
 		// Convert the original length of the input to a byte array
-		byte[] lenInBytes = BigInteger.valueOf(input.length * 8).toByteArray();
+		byte[] lenInBytes = BigInteger.valueOf(messageLength * 8L).toByteArray();
 
 		int indexPlaceForSize = 17;
 		// And put it at the end of our padded input (this place was taken from official
@@ -65,12 +81,12 @@ public class Logic {
 
 		}
 		// initialize Ci (will be needed later for creation of the first key)
-		Ci = Arrays.copyOfRange(out, size - indexPlaceForSize + 1, size);
+		Ci.set(Arrays.copyOfRange(out, size - indexPlaceForSize + 1, size));
 
 		// Print out the total message bits before/after if debug >= 1
 		if (Echo.DEBUG >= 1) {
-			System.out.printf("Total message length in bits before padding: %d\n", input.length * 8);
-			System.out.printf("Total message length in bits after padding: %d\n", out.length * 8);
+			System.out.printf("Total message length in bits before padding: %d\n", messageLength * 8L);
+			System.out.printf("Total message length in bits after padding: %d\n", (messageLength - input.length + out.length) * 8L);
 		}
 
 		return out;
@@ -115,6 +131,25 @@ public class Logic {
 		return blocks;
 	}
 
+	/**
+	 * Reads one block of 128 bytes starting at index offset of the buffer into
+	 * 8x(4x4) byte array. Absolute gets are used, so the position of the buffer is
+	 * not changed and a direct buffer is read without copying it to the heap first.
+	 * 
+	 * @param input  heap or direct buffer
+	 * @param offset index of the first byte of the block
+	 * @return byte[][][]
+	 */
+	public static byte[][][] toBlock(ByteBuffer input, int offset) {
+		byte[][][] block = new byte[8][4][4];
+		byte[] word = new byte[16];
+		for (int j = 0; j < 8; j++) {
+			input.get(offset + j * 16, word);
+			block[j] = make4x4BoxFromWord(word);
+		}
+		return block;
+	}
+
 	/**
 	 * sometimes we need to manipulate with 16 bytes as 4x4 boxes and sometimes just
 	 * as an array.
@@ -167,7 +202,7 @@ public class Logic {
 		// for created message block we will call 10 rounds of Big.Round and 1 time
 		// Big.Final
 		for (int i = 0; i < 10; i++) {
-			subWords(S, Constants.SALT, Ci);
+			subWords(S, Constants.SALT, Ci.get());
 			shiftRows(S);
 			mixColumns(S);
 		}